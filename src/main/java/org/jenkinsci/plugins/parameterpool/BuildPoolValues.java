@@ -33,6 +33,10 @@ public class BuildPoolValues {
         }
     }
 
+    public boolean isRunning(String poolValue) {
+        return valuesFromRunningBuilds.contains(poolValue);
+    }
+
     public String selectValue(Set<String> allowedValues, boolean preferError) {
         String value;
         if (preferError) {
@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.model.InvisibleAction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the pool values a matrix build assigned to its configurations, per parameter name and combination.
+ * Added to the matrix parent build so that every run of a configuration in that build reuses its value.
+ */
+public class MatrixPoolAssignment extends InvisibleAction {
+
+    private final Map<String, Map<String, String>> assignedValues = new HashMap<String, Map<String, String>>();
+
+    public synchronized String getValue(String parameterName, String combination) {
+        Map<String, String> values = assignedValues.get(parameterName);
+        return values != null ? values.get(combination) : null;
+    }
+
+    public synchronized List<String> getValues(String parameterName) {
+        Map<String, String> values = assignedValues.get(parameterName);
+        return values != null ? new ArrayList<String>(values.values()) : new ArrayList<String>();
+    }
+
+    /**
+     * Values per combination for the parameter.
+     */
+    public synchronized Map<String, String> getAssignments(String parameterName) {
+        Map<String, String> values = assignedValues.get(parameterName);
+        return values != null ? new TreeMap<String, String>(values) : new TreeMap<String, String>();
+    }
+
+    public synchronized void assign(String parameterName, String combination, String value) {
+        Map<String, String> values = assignedValues.get(parameterName);
+        if (values == null) {
+            values = new TreeMap<String, String>();
+            assignedValues.put(parameterName, values);
+        }
+        values.put(combination, value);
+    }
+
+    public synchronized void unassign(String parameterName, String combination) {
+        Map<String, String> values = assignedValues.get(parameterName);
+        if (values != null) {
+            values.remove(combination);
+        }
+    }
+}
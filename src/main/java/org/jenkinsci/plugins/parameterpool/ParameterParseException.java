@@ -0,0 +1,19 @@
+package org.jenkinsci.plugins.parameterpool;
+
+/**
+ * Thrown when pool values text cannot be parsed.
+ * The position is the zero based index of the offending character in the source text.
+ */
+public class ParameterParseException extends IllegalArgumentException {
+
+    private final int position;
+
+    public ParameterParseException(String message, int position) {
+        super(message + " at character " + (position + 1));
+        this.position = position;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+}
@@ -1,59 +1,353 @@
 package org.jenkinsci.plugins.parameterpool;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Parses parameter values from source text.
  * e.g. value[1..4] will be parsed as value1,value2,value3,value4.
+ *
+ * Supported syntax per comma separated entry:
+ * <ul>
+ *     <li>Ranges, optionally descending: vm[1..4], vm[4..1]</li>
+ *     <li>Zero padded ranges: vm[001..120] gives vm001 to vm120</li>
+ *     <li>Stepped ranges: port[8000..9000:10]</li>
+ *     <li>Single values: vm[13]</li>
+ *     <li>Multiple ranges in one value, expanded in order: a[1..2]b[1..2] gives a1b1, a1b2, a2b1, a2b2</li>
+ *     <li>Exclusions separated by a spaced dash: vm[1..50] - vm[13] - vm[20..25]</li>
+ *     <li>Backslash escapes for the special characters , [ ] - and \: a\,b, vm\[1\], C:\\tools</li>
+ * </ul>
+ * Excluded values are removed from the whole pool once all entries are parsed.
+ * To avoid silently changing values that were written before exclusions and escapes existed,
+ * a backslash before any other character and an excluded value that is not in the pool are errors.
+ *
+ * The text is scanned once, invalid text results in a {@link ParameterParseException}.
  */
 public class ParameterParser {
 
-    private final Matcher rangeMatcher = Pattern.compile("(.+)\\[(\\d+)\\.\\.(\\d+)\\](.*)").matcher("");
+    /**
+     * Upper bound on the number of values a definition can expand to.
+     */
+    static final int MAX_VALUES = 100000;
 
-    private Set<String> values = new LinkedHashSet<String>();
+    private static final int MAX_NUMBER_DIGITS = 18;
+
+    private static final String ESCAPABLE_CHARACTERS = ",[]-\\";
+
+    private final String text;
+
+    private final int length;
+
+    private int pos;
+
+    private final List<Object> segments = new ArrayList<Object>();
+
+    private final StringBuilder literal = new StringBuilder();
+
+    private final StringBuilder value = new StringBuilder();
+
+    private final Set<String> values = new LinkedHashSet<String>();
+
+    private final Set<String> excludedValues = new LinkedHashSet<String>();
+
+    private final Set<String> pendingExclusions = new LinkedHashSet<String>();
+
+    /**
+     * Position of the exclusion that first excluded each value.
+     */
+    private final Map<String, Integer> exclusionPositions = new LinkedHashMap<String, Integer>();
+
+    private final boolean requireExcludedValuesInPool;
+
+    private boolean paddedRanges;
 
     public ParameterParser(String sourceText) {
-        parseValues(sourceText == null ? "" : sourceText);
+        this(sourceText, true);
+    }
+
+    /**
+     * @param requireExcludedValuesInPool false when exclusions may refer to values defined elsewhere,
+     *                                    e.g. on other lines of a pool values file
+     */
+    ParameterParser(String sourceText, boolean requireExcludedValuesInPool) {
+        this.text = sourceText == null ? "" : sourceText;
+        this.length = text.length();
+        this.requireExcludedValuesInPool = requireExcludedValuesInPool;
+        parseValues();
+    }
+
+    private void parseValues() {
+        while (pos < length) {
+            parseEntry();
+            if (pos < length) {
+                // entries only end at a comma or the end of the text
+                pos++;
+            }
+        }
+        if (requireExcludedValuesInPool) {
+            for (Map.Entry<String, Integer> exclusion : exclusionPositions.entrySet()) {
+                if (!values.contains(exclusion.getKey())) {
+                    throw new ParameterParseException("Excluded value " + exclusion.getKey()
+                            + " is not in the pool, use '\\-' for a literal ' - '", exclusion.getValue());
+                }
+            }
+        }
+        values.removeAll(excludedValues);
     }
 
-    private void parseValues(String sourceText) {
-        String[] pieces = sourceText.split(",");
-        for (String piece : pieces) {
-            piece = piece.trim();
-            rangeMatcher.reset(piece);
-            if (!rangeMatcher.find()) {
-                values.add(piece);
+    private void parseEntry() {
+        boolean excluding = false;
+        boolean expectingValue = false;
+        int operatorPosition = -1;
+        while (true) {
+            skipWhitespace();
+            if (pos >= length || text.charAt(pos) == ',') {
+                break;
+            }
+            if (isOperatorAt(pos)) {
+                if (expectingValue) {
+                    throw new ParameterParseException("Unexpected '-'", pos);
+                }
+                excluding = true;
+                expectingValue = true;
+                operatorPosition = pos++;
                 continue;
             }
+            if (excluding) {
+                int exclusionStart = pos;
+                pendingExclusions.clear();
+                parseValue(pendingExclusions);
+                for (String excludedValue : pendingExclusions) {
+                    if (excludedValues.add(excludedValue)) {
+                        exclusionPositions.put(excludedValue, exclusionStart);
+                    }
+                }
+            } else {
+                parseValue(values);
+            }
+            expectingValue = false;
+        }
+        if (expectingValue) {
+            throw new ParameterParseException("Expected a value to exclude after '-'", operatorPosition);
+        }
+    }
+
+    private void parseValue(Set<String> target) {
+        int valueStart = pos;
+        segments.clear();
+        literal.setLength(0);
+        while (pos < length) {
+            char c = text.charAt(pos);
+            if (c == ',') {
+                break;
+            } else if (c == '[') {
+                addLiteralSegment();
+                segments.add(parseRange());
+            } else if (c == ']') {
+                throw new ParameterParseException("Unexpected ']' without matching '['", pos);
+            } else if (c == '\\') {
+                if (pos + 1 >= length) {
+                    throw new ParameterParseException("Expected a character to escape after '\\'", pos);
+                }
+                char escaped = text.charAt(pos + 1);
+                if (ESCAPABLE_CHARACTERS.indexOf(escaped) == -1) {
+                    throw new ParameterParseException("Unknown escape '\\" + escaped
+                            + "', use '\\\\' for a literal backslash", pos);
+                }
+                literal.append(escaped);
+                pos += 2;
+            } else if (Character.isWhitespace(c)) {
+                int whitespaceStart = pos;
+                skipWhitespace();
+                if (pos >= length || text.charAt(pos) == ',' || isOperatorAt(pos)) {
+                    break;
+                }
+                literal.append(text, whitespaceStart, pos);
+            } else {
+                literal.append(c);
+                pos++;
+            }
+        }
+        addLiteralSegment();
+
+        long count = 1;
+        for (Object segment : segments) {
+            if (segment instanceof Range) {
+                long rangeCount = ((Range) segment).count;
+                // checked before multiplying as the product of large ranges can overflow
+                if (count > MAX_VALUES / rangeCount) {
+                    count = MAX_VALUES + 1;
+                    break;
+                }
+                count *= rangeCount;
+            }
+        }
+        if (values.size() + excludedValues.size() + count > MAX_VALUES) {
+            throw new ParameterParseException("Too many values, the limit is " + MAX_VALUES, valueStart);
+        }
+
+        value.setLength(0);
+        expand(target);
+    }
+
+    private void addLiteralSegment() {
+        if (literal.length() > 0) {
+            segments.add(literal.toString());
+            literal.setLength(0);
+        }
+    }
+
+    private Range parseRange() {
+        int rangeStart = pos++;
+        int startDigits = pos;
+        long start = parseNumber();
+        startDigits = pos - startDigits;
+        boolean startPadded = startDigits > 1 && text.charAt(pos - startDigits) == '0';
+
+        if (pos < length && text.charAt(pos) == ']') {
+            pos++;
+            paddedRanges |= startPadded;
+            return new Range(start, start, 1, startPadded ? startDigits : 0);
+        }
+
+        if (!text.startsWith("..", pos)) {
+            throw new ParameterParseException("Expected '..' or ']'", pos);
+        }
+        pos += 2;
+
+        int endDigits = pos;
+        long end = parseNumber();
+        endDigits = pos - endDigits;
+        boolean endPadded = endDigits > 1 && text.charAt(pos - endDigits) == '0';
+
+        long step = 1;
+        if (pos < length && text.charAt(pos) == ':') {
+            pos++;
+            int stepPosition = pos;
+            step = parseNumber();
+            if (step == 0) {
+                throw new ParameterParseException("Range step must be greater than zero", stepPosition);
+            }
+        }
 
-            addValuesForPattern();
+        if (pos >= length) {
+            throw new ParameterParseException("Range opened here is not closed with ']'", rangeStart);
+        }
+        if (text.charAt(pos) != ']') {
+            throw new ParameterParseException("Expected ']'", pos);
         }
+        pos++;
+
+        int width = startPadded || endPadded ? Math.max(startDigits, endDigits) : 0;
+        paddedRanges |= width > 0;
+        return new Range(start, end, step, width);
     }
 
-    private void addValuesForPattern() {
-        String prefix = rangeMatcher.group(1);
-        int start = Integer.parseInt(rangeMatcher.group(2));
-        int end = Integer.parseInt(rangeMatcher.group(3));
-        String suffix = rangeMatcher.group(4);
+    private long parseNumber() {
+        int numberStart = pos;
+        long number = 0;
+        while (pos < length) {
+            char c = text.charAt(pos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            if (pos - numberStart >= MAX_NUMBER_DIGITS) {
+                throw new ParameterParseException("Number is too large", numberStart);
+            }
+            number = number * 10 + (c - '0');
+            pos++;
+        }
+        if (pos == numberStart) {
+            throw new ParameterParseException("Expected a number", pos);
+        }
+        return number;
+    }
+
+    /**
+     * Expands the segments like an odometer, the last range changes fastest.
+     * Only the segments from the range that changed onwards are appended again for each value.
+     */
+    private void expand(Set<String> target) {
+        int segmentCount = segments.size();
+        long[] indexes = new long[segmentCount];
+        int[] marks = new int[segmentCount];
+        int changedSegment = 0;
+        while (true) {
+            value.setLength(changedSegment < segmentCount ? marks[changedSegment] : value.length());
+            for (int i = changedSegment; i < segmentCount; i++) {
+                marks[i] = value.length();
+                Object segment = segments.get(i);
+                if (segment instanceof String) {
+                    value.append((String) segment);
+                } else {
+                    Range range = (Range) segment;
+                    appendNumber(range.valueAt(indexes[i]), range.width);
+                }
+            }
+            target.add(value.toString());
 
-        if (start > end) {
-            for (int i = start; i >= end; i --) {
-                values.add(prefix + i + suffix);
+            changedSegment = segmentCount - 1;
+            while (changedSegment >= 0) {
+                Object segment = segments.get(changedSegment);
+                if (segment instanceof Range && ++indexes[changedSegment] < ((Range) segment).count) {
+                    break;
+                }
+                indexes[changedSegment] = 0;
+                changedSegment--;
             }
-        } else {
-            for (int i = start; i <= end; i ++) {
-                values.add(prefix + i + suffix);
+            if (changedSegment < 0) {
+                return;
             }
         }
     }
 
+    private void appendNumber(long number, int width) {
+        int digits = 1;
+        for (long remaining = number / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        for (int i = digits; i < width; i++) {
+            value.append('0');
+        }
+        value.append(number);
+    }
+
+    private boolean isOperatorAt(int index) {
+        if (text.charAt(index) != '-') {
+            return false;
+        }
+        return index + 1 >= length || text.charAt(index + 1) == ',' || Character.isWhitespace(text.charAt(index + 1));
+    }
+
+    private void skipWhitespace() {
+        while (pos < length && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
     public Set<String> getValues() {
         return values;
     }
 
+    /**
+     * True if a range has leading zeros, e.g. vm[01..10].
+     * Before padding was supported these gave unpadded values, vm1 to vm10.
+     */
+    public boolean hasPaddedRanges() {
+        return paddedRanges;
+    }
+
+    /**
+     * Values that were excluded with a spaced dash. These are already removed from {@link #getValues()}.
+     */
+    public Set<String> getExcludedValues() {
+        return excludedValues;
+    }
+
     public String valuesAsText() {
         StringBuilder valuesText = new StringBuilder();
         for (String value : values) {
@@ -65,4 +359,24 @@ public class ParameterParser {
         }
         return valuesText.toString();
     }
+
+    private static final class Range {
+        final long start;
+        final long end;
+        final long step;
+        final long count;
+        final int width;
+
+        Range(long start, long end, long step, int width) {
+            this.start = start;
+            this.end = end;
+            this.step = step;
+            this.count = Math.abs(end - start) / step + 1;
+            this.width = width;
+        }
+
+        long valueAt(long index) {
+            return start > end ? start - index * step : start + index * step;
+        }
+    }
 }
@@ -2,14 +2,24 @@ package org.jenkinsci.plugins.parameterpool;
 import hudson.EnvVars;
 import hudson.Launcher;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Util;
+import hudson.matrix.Axis;
+import hudson.matrix.Combination;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
 import hudson.model.AutoCompletionCandidates;
+import hudson.model.Cause;
 import hudson.model.EnvironmentContributingAction;
 import hudson.model.Item;
 import hudson.model.ItemGroup;
 import hudson.model.Job;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
 import hudson.util.FormValidation;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
@@ -20,10 +30,12 @@ import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.servlet.ServletException;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
@@ -31,16 +43,25 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
 
 /**
  * Builder for parameter pool values.
  */
 public class ParameterPoolBuilder extends Builder {
 
+    /**
+     * Locks for assigning values to the configurations of running matrix builds, keyed by external build id.
+     * Kept separate from the build objects so that core and other plugins locking on them are not held up.
+     */
+    private static final Map<String, Object> matrixBuildLocks = new HashMap<String, Object>();
+
     private final String projects;
 
     private final String name;
@@ -49,6 +70,10 @@ public class ParameterPoolBuilder extends Builder {
 
     private final boolean preferError;
 
+    private String valuesFile;
+
+    private String valuesScript;
+
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
     @DataBoundConstructor
     public ParameterPoolBuilder(String projects, String name, String values, boolean preferError) {
@@ -74,12 +99,33 @@ public class ParameterPoolBuilder extends Builder {
         return preferError;
     }
 
+    public String getValuesFile() {
+        return valuesFile;
+    }
+
+    @DataBoundSetter
+    public void setValuesFile(String valuesFile) {
+        this.valuesFile = Util.fixEmptyAndTrim(valuesFile);
+    }
+
+    public String getValuesScript() {
+        return valuesScript;
+    }
+
+    @DataBoundSetter
+    public void setValuesScript(String valuesScript) {
+        this.valuesScript = Util.fixEmptyAndTrim(valuesScript);
+    }
+
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException,
             InterruptedException {
         EnvVars env = build.getEnvironment(listener);
         List<AbstractProject> projectsToUse = new ArrayList<AbstractProject>();
-        if (StringUtils.isBlank(projects)) {
+        if (StringUtils.isBlank(projects) && build instanceof MatrixRun) {
+            // matrix parent builds hold the values assigned to all of their configurations
+            projectsToUse.add(((MatrixRun) build).getParentBuild().getProject());
+        } else if (StringUtils.isBlank(projects)) {
             projectsToUse.add(build.getProject());
         } else {
             String expandedProjects = env.expand(projects);
@@ -97,6 +143,60 @@ public class ParameterPoolBuilder extends Builder {
 
         PrintStream logger = listener.getLogger();
 
+        String expandedName = env.expand(name);
+
+        String selectedPoolValue;
+        if (build instanceof MatrixRun) {
+            selectedPoolValue = selectMatrixPoolValue((MatrixRun) build, launcher, listener, env, expandedName,
+                    projectsToUse);
+        } else {
+            Set<String> allowedValues = readAllowedValues(build, launcher, listener, env, expandedName);
+            PoolValueSelector valueSelector = new PoolValueSelector();
+            selectedPoolValue = valueSelector.selectPoolValue(expandedName, preferError,
+                    build.getFullDisplayName(), collectBuilds(projectsToUse, logger), logger, allowedValues);
+        }
+
+        logger.println("Adding " + expandedName + " as environment variable with value of " + selectedPoolValue);
+
+        ParameterEnvAction envAction = new ParameterEnvAction();
+        envAction.add(expandedName, selectedPoolValue);
+
+        build.addAction(envAction);
+
+        return true;
+    }
+
+    private Set<String> readAllowedValues(AbstractBuild build, Launcher launcher, BuildListener listener, EnvVars env,
+                                          String expandedName) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        String expandedValues = env.expand(values);
+
+        ParameterParser parameterParser = new ParameterParser(expandedValues);
+
+        logger.println("Parsed following values from input text " + expandedValues);
+        logger.println(parameterParser.valuesAsText());
+        if (parameterParser.hasPaddedRanges()) {
+            logger.println("Warning: leading zeros in ranges are kept, earlier versions of this plugin gave "
+                    + "unpadded values that running builds may still hold");
+        }
+
+        Set<String> allowedValues = new LinkedHashSet<String>(parameterParser.getValues());
+        PoolValuesSource valuesSource = new PoolValuesSource(logger);
+        if (valuesFile != null) {
+            allowedValues.addAll(readValuesFile(build, env, valuesSource));
+        }
+        if (valuesScript != null) {
+            String sourceKey = build.getBuiltOnStr() + ":" + valuesScript;
+            allowedValues.addAll(valuesSource.readScriptValues(sourceKey, valuesScript, build, launcher, listener, env));
+        }
+
+        if (allowedValues.isEmpty()) {
+            throw new IllegalArgumentException("No values set for name " + expandedName);
+        }
+        return allowedValues;
+    }
+
+    private List<Run> collectBuilds(List<AbstractProject> projectsToUse, PrintStream logger) {
         List<Run> builds = new ArrayList<Run>();
         for (AbstractProject project : projectsToUse) {
             logger.println("Checking project(s) " + project.getName() + " for parameter pool values");
@@ -109,33 +209,328 @@ public class ParameterPoolBuilder extends Builder {
                 return new Long(secondRun.getStartTimeInMillis()).compareTo(firstRun.getStartTimeInMillis());
             }
         });
+        return builds;
+    }
 
-        String expandedName = env.expand(name);
-        String expandedValues = env.expand(values);
+    /**
+     * The first configuration run to get here selects values for every configuration of the matrix build
+     * in a single pass, later runs use the value assigned to their combination.
+     * Assignments are recorded on the matrix build, so re-running a configuration in that build reuses its value.
+     * A matrix build that re-runs an earlier build reuses the value the earlier build assigned to each combination,
+     * as long as that value is still allowed and not in use by a running build.
+     * The run making the assignment gets the first value. The other configurations only have values reserved
+     * when there are enough for all of them, and a run that would otherwise get no value takes one reserved
+     * for a configuration that has not started yet.
+     * Pool values are read with the environment of the run making the assignment, so when the settings refer
+     * to an axis each run selects its own value.
+     */
+    private String selectMatrixPoolValue(MatrixRun run, Launcher launcher, BuildListener listener, EnvVars env,
+                                         String expandedName, List<AbstractProject> projectsToUse)
+            throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        MatrixBuild parentBuild = run.getParentBuild();
+        MatrixProject matrixProject = parentBuild.getProject();
+        String combination = run.getParent().getCombination().toString();
+        synchronized (getMatrixBuildLock(parentBuild)) {
+            MatrixPoolAssignment assignment = parentBuild.getAction(MatrixPoolAssignment.class);
+            if (assignment == null) {
+                assignment = new MatrixPoolAssignment();
+                parentBuild.addAction(assignment);
+            }
 
-        ParameterParser parameterParser = new ParameterParser(expandedValues);
+            String assignedValue = assignment.getValue(expandedName, combination);
+            if (assignedValue != null) {
+                logger.println("Using value " + assignedValue + " assigned to " + combination + " by "
+                        + parentBuild.getFullDisplayName());
+                return assignedValue;
+            }
 
-        if (parameterParser.getValues().isEmpty()) {
-            throw new IllegalArgumentException("No values set for name " + expandedName);
+            Set<String> allowedValues = readAllowedValues(run, launcher, listener, env, expandedName);
+            PoolValueSelector valueSelector = new PoolValueSelector();
+            BuildPoolValues poolValues = valueSelector.collectPoolValues(expandedName,
+                    parentBuild.getFullDisplayName(), collectBuilds(projectsToUse, logger), logger);
+
+            // values of configurations that have finished can be used again, the others keep theirs
+            Set<String> availableValues = new LinkedHashSet<String>(allowedValues);
+            for (Map.Entry<String, String> assigned : assignment.getAssignments(expandedName).entrySet()) {
+                MatrixRun assignedRun = getStartedRun(parentBuild, assigned.getKey());
+                if (assignedRun == null || assignedRun.isBuilding()) {
+                    availableValues.remove(assigned.getValue());
+                }
+            }
+
+            List<String> unassignedCombinations = new ArrayList<String>();
+            unassignedCombinations.add(combination);
+            if (dependsOnAxes(matrixProject)) {
+                logger.println("Pool settings refer to axes of " + matrixProject.getFullDisplayName()
+                        + ", selecting a value for " + combination + " only");
+            } else {
+                Set<String> otherCombinations = new TreeSet<String>();
+                for (MatrixConfiguration configuration : matrixProject.getActiveConfigurations()) {
+                    String configurationCombination = configuration.getCombination().toString();
+                    if (assignment.getValue(expandedName, configurationCombination) == null) {
+                        otherCombinations.add(configurationCombination);
+                    }
+                }
+                otherCombinations.remove(combination);
+                unassignedCombinations.addAll(otherCombinations);
+            }
+
+            // original values are resolved first so that fresh values never take them
+            List<String> freshCombinations = new ArrayList<String>();
+            for (String unassignedCombination : unassignedCombinations) {
+                String originalValue = findOriginalValue(parentBuild, expandedName, unassignedCombination,
+                        availableValues, poolValues, logger);
+                if (originalValue != null) {
+                    availableValues.remove(originalValue);
+                    assignment.assign(expandedName, unassignedCombination, originalValue);
+                } else {
+                    freshCombinations.add(unassignedCombination);
+                }
+            }
+
+            if (!freshCombinations.isEmpty()) {
+                logger.println("Selecting values for " + freshCombinations.size() + " configuration(s) of "
+                        + parentBuild.getFullDisplayName());
+            }
+            List<String> freshValues = new ArrayList<String>();
+            while (freshValues.size() < freshCombinations.size()) {
+                String selectedValue = poolValues.selectValue(availableValues, preferError);
+                if (selectedValue == null) {
+                    break;
+                }
+                freshValues.add(selectedValue);
+                availableValues.remove(selectedValue);
+            }
+            if (freshValues.size() < freshCombinations.size()) {
+                logger.println("Only " + freshValues.size() + " value(s) free for " + freshCombinations.size()
+                        + " configuration(s), the other configurations select their own when they start");
+                freshCombinations.retainAll(Collections.singleton(combination));
+            }
+            for (int i = 0; i < freshCombinations.size() && i < freshValues.size(); i++) {
+                logger.println("Assigning " + freshValues.get(i) + " to " + freshCombinations.get(i));
+                assignment.assign(expandedName, freshCombinations.get(i), freshValues.get(i));
+            }
+
+            if (assignment.getValue(expandedName, combination) == null) {
+                takeReservedValue(parentBuild, assignment, expandedName, combination, allowedValues, poolValues,
+                        logger);
+            }
+            parentBuild.save();
+
+            assignedValue = assignment.getValue(expandedName, combination);
+            if (assignedValue == null) {
+                throw new IllegalArgumentException("No allowable value found for " + combination
+                        + "! All of these values were taken: " + allowedValues.toString());
+            }
+            return assignedValue;
+        }
+    }
+
+    /**
+     * Value assigned to the combination by the build being re-run, if it can be used again.
+     */
+    private static String findOriginalValue(MatrixBuild build, String expandedName, String combination,
+                                            Set<String> availableValues, BuildPoolValues poolValues,
+                                            PrintStream logger) {
+        MatrixBuild originatingBuild = findOriginatingBuild(build, expandedName, combination);
+        if (originatingBuild == null) {
+            return null;
+        }
+        String originalValue = originatingBuild.getAction(MatrixPoolAssignment.class)
+                .getValue(expandedName, combination);
+        if (!availableValues.contains(originalValue) || poolValues.isRunning(originalValue)) {
+            logger.println("Value " + originalValue + " assigned to " + combination + " by "
+                    + originatingBuild.getFullDisplayName() + " is no longer allowed or is in use");
+            return null;
         }
+        logger.println("Reusing value " + originalValue + " assigned to " + combination + " by "
+                + originatingBuild.getFullDisplayName());
+        return originalValue;
+    }
 
-        logger.println("Parsed following values from input text " + expandedValues);
-        logger.println(parameterParser.valuesAsText());
+    /**
+     * Moves a value reserved for a configuration that has not started yet to the combination.
+     * That configuration selects its own value when it starts.
+     */
+    private void takeReservedValue(MatrixBuild build, MatrixPoolAssignment assignment, String expandedName,
+                                   String combination, Set<String> allowedValues, BuildPoolValues poolValues,
+                                   PrintStream logger) {
+        Map<String, String> reservedCombinations = new HashMap<String, String>();
+        for (Map.Entry<String, String> assigned : assignment.getAssignments(expandedName).entrySet()) {
+            if (getStartedRun(build, assigned.getKey()) == null) {
+                reservedCombinations.put(assigned.getValue(), assigned.getKey());
+            }
+        }
+        Set<String> reservedValues = new LinkedHashSet<String>(allowedValues);
+        reservedValues.retainAll(reservedCombinations.keySet());
+        String reservedValue = poolValues.selectValue(reservedValues, preferError);
+        if (reservedValue == null) {
+            return;
+        }
+        String reservedCombination = reservedCombinations.get(reservedValue);
+        logger.println("Taking value " + reservedValue + " reserved for " + reservedCombination
+                + ", which has not started yet");
+        assignment.unassign(expandedName, reservedCombination);
+        assignment.assign(expandedName, combination, reservedValue);
+    }
 
+    /**
+     * Run of the combination in this build, null if it has not started yet.
+     */
+    private static MatrixRun getStartedRun(MatrixBuild build, String combination) {
+        MatrixConfiguration configuration = build.getProject().getItem(Combination.fromString(combination));
+        return configuration != null ? configuration.getBuildByNumber(build.getNumber()) : null;
+    }
 
-        PoolValueSelector valueSelector = new PoolValueSelector();
+    /**
+     * True if a setting refers to an axis, e.g. ${config}, so that it can differ between configurations.
+     */
+    private boolean dependsOnAxes(MatrixProject project) {
+        for (Axis axis : project.getAxes()) {
+            String axisName = Pattern.quote(axis.getName());
+            Pattern axisReference = Pattern.compile("\\$(\\{" + axisName + "\\}|" + axisName
+                    + "(?![A-Za-z0-9_]))");
+            for (String setting : new String[] {projects, name, values, valuesFile, valuesScript}) {
+                if (setting != null && axisReference.matcher(setting).find()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-        String selectedPoolValue = valueSelector.selectPoolValue(expandedName, preferError,
-                build.getFullDisplayName(), builds, logger, parameterParser.getValues());
+    /**
+     * Follows upstream causes pointing at earlier builds of the same matrix project, as added by re-runs
+     * e.g. from the Rebuild plugin, to the nearest build that assigned a value to the combination.
+     */
+    private static MatrixBuild findOriginatingBuild(MatrixBuild build, String expandedName, String combination) {
+        MatrixProject project = build.getProject();
+        Set<Integer> visitedBuilds = new HashSet<Integer>();
+        MatrixBuild currentBuild = build;
+        while (currentBuild != null && visitedBuilds.add(currentBuild.getNumber())) {
+            MatrixBuild upstreamBuild = null;
+            for (Cause cause : currentBuild.getCauses()) {
+                if (cause instanceof Cause.UpstreamCause) {
+                    Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause) cause;
+                    if (project.getFullName().equals(upstreamCause.getUpstreamProject())) {
+                        upstreamBuild = project.getBuildByNumber(upstreamCause.getUpstreamBuild());
+                        break;
+                    }
+                }
+            }
+            if (upstreamBuild != null) {
+                MatrixPoolAssignment assignment = upstreamBuild.getAction(MatrixPoolAssignment.class);
+                if (assignment != null && assignment.getValue(expandedName, combination) != null) {
+                    return upstreamBuild;
+                }
+            }
+            currentBuild = upstreamBuild;
+        }
+        return null;
+    }
 
-        logger.println("Adding " + expandedName + " as environment variable with value of " + selectedPoolValue);
+    /**
+     * Absolute paths are read on the master and have to be inside {@link #getMasterValuesDir()},
+     * relative paths are resolved against the workspace and cannot point outside of it.
+     */
+    private Set<String> readValuesFile(AbstractBuild build, EnvVars env, PoolValuesSource valuesSource)
+            throws IOException, InterruptedException {
+        EnvVars fileEnv = new EnvVars(env);
+        fileEnv.put("JENKINS_HOME", Jenkins.getInstance().getRootDir().getAbsolutePath());
+        String expandedFile = fileEnv.expand(valuesFile);
+
+        if (isMasterPath(expandedFile)) {
+            File file = resolveMasterValuesFile(expandedFile);
+            return valuesSource.readFileValues("master:" + file.getPath(), new FilePath(file));
+        }
+        if (isOutsideWorkspace(expandedFile)) {
+            throw new IllegalArgumentException("Pool values file " + expandedFile + " is outside of the workspace");
+        }
 
-        ParameterEnvAction envAction = new ParameterEnvAction();
-        envAction.add(expandedName, selectedPoolValue);
+        FilePath workspace = build.getWorkspace();
+        if (workspace == null) {
+            throw new IllegalArgumentException("No workspace found to read pool values file " + expandedFile);
+        }
+        FilePath file = workspace.child(expandedFile);
+        return valuesSource.readFileValues(build.getBuiltOnStr() + ":" + file.getRemote(), file);
+    }
 
-        build.addAction(envAction);
+    /**
+     * Directory on the master that pool values files can be read from.
+     * Keeps the rest of JENKINS_HOME, e.g. secrets and credentials, from being read into pool values.
+     */
+    static File getMasterValuesDir() {
+        return new File(Jenkins.getInstance().getRootDir(), "parameter-pool");
+    }
 
-        return true;
+    /**
+     * @param expandedPath path with variables, including JENKINS_HOME, already expanded
+     */
+    static boolean isMasterPath(String expandedPath) {
+        return new File(expandedPath).isAbsolute();
+    }
+
+    static String expandJenkinsHome(String path) {
+        String jenkinsHome = Jenkins.getInstance().getRootDir().getAbsolutePath();
+        return path.replace("${JENKINS_HOME}", jenkinsHome).replace("$JENKINS_HOME", jenkinsHome);
+    }
+
+    static File resolveMasterValuesFile(String path) throws IOException {
+        File valuesDir = getMasterValuesDir().getCanonicalFile();
+        File file = new File(path).getCanonicalFile();
+        if (!file.getPath().startsWith(valuesDir.getPath() + File.separator)) {
+            throw new IllegalArgumentException("Pool values files on the master have to be in " + valuesDir
+                    + ", " + path + " is not");
+        }
+        return file;
+    }
+
+    static boolean isOutsideWorkspace(String path) {
+        if (path.startsWith("/") || path.startsWith("\\") || path.matches("[A-Za-z]:.*")) {
+            return true;
+        }
+        int depth = 0;
+        for (String part : path.split("[/\\\\]")) {
+            if (part.equals("..")) {
+                depth--;
+                if (depth < 0) {
+                    return true;
+                }
+            } else if (!part.isEmpty() && !part.equals(".")) {
+                depth++;
+            }
+        }
+        return false;
+    }
+
+    private static Object getMatrixBuildLock(MatrixBuild build) {
+        synchronized (matrixBuildLocks) {
+            Object lock = matrixBuildLocks.get(build.getExternalizableId());
+            if (lock == null) {
+                lock = new Object();
+                matrixBuildLocks.put(build.getExternalizableId(), lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Drops the lock of a matrix build once all of its configurations have finished.
+     */
+    @Extension
+    public static final class MatrixBuildLockRelease extends RunListener<MatrixBuild> {
+
+        public MatrixBuildLockRelease() {
+            super(MatrixBuild.class);
+        }
+
+        @Override
+        public void onCompleted(MatrixBuild build, TaskListener listener) {
+            synchronized (matrixBuildLocks) {
+                matrixBuildLocks.remove(build.getExternalizableId());
+            }
+        }
     }
 
     @Override
@@ -147,6 +542,8 @@ public class ParameterPoolBuilder extends Builder {
     @Extension
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
+        private static final int MAX_AUTO_COMPLETE_CANDIDATES = 50;
+
         /**
          * In order to load the persisted global configuration, you have to
          * call load() in the constructor.
@@ -164,10 +561,49 @@ public class ParameterPoolBuilder extends Builder {
             return FormValidation.ok();
         }
 
-        public FormValidation doCheckValues(@QueryParameter String value)
+        public FormValidation doCheckValuesFile(@QueryParameter String value) throws IOException {
+            if (StringUtils.isBlank(value))
+                return FormValidation.ok();
+            String expandedFile = expandJenkinsHome(value);
+            if (!isMasterPath(expandedFile)) {
+                if (isOutsideWorkspace(expandedFile))
+                    return FormValidation.error("Relative paths cannot point outside of the workspace");
+                return FormValidation.ok();
+            }
+            try {
+                resolveMasterValuesFile(expandedFile);
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckValues(@QueryParameter String value, @QueryParameter String valuesFile,
+                                            @QueryParameter String valuesScript)
                 throws IOException, ServletException {
+            boolean hasSource = StringUtils.isNotBlank(valuesFile) || StringUtils.isNotBlank(valuesScript);
+            if (value.length() == 0 && hasSource)
+                return FormValidation.ok();
             if (value.length() == 0)
                 return FormValidation.error("Please set parameter values");
+            ParameterParser parameterParser;
+            try {
+                parameterParser = new ParameterParser(value);
+            } catch (ParameterParseException e) {
+                return FormValidation.error(e.getMessage());
+            }
+            if (parameterParser.getValues().isEmpty() && !hasSource)
+                return FormValidation.error("No values left in the pool after exclusions");
+            StringBuilder warnings = new StringBuilder();
+            if (parameterParser.hasPaddedRanges())
+                warnings.append("Leading zeros in a range are kept, e.g. vm[01..10] gives vm01 rather than vm1. "
+                        + "Builds started by earlier plugin versions hold unpadded values. ");
+            if (value.contains("\\"))
+                warnings.append("A backslash escapes the next character. ");
+            if (!parameterParser.getExcludedValues().isEmpty())
+                warnings.append("Values after ' - ' are excluded from the pool. ");
+            if (warnings.length() > 0)
+                return FormValidation.warning(warnings + "The pool values are " + parameterParser.valuesAsText());
             return FormValidation.ok();
         }
 
@@ -188,8 +624,12 @@ public class ParameterPoolBuilder extends Builder {
                 }
                 Item item = Jenkins.getInstance().getItem(projectName,project,Item.class); // only works after version 1.410
                 if(item==null){
+                    String nearestName = ProjectNameIndex.get().findNearest(projectName);
+                    if (nearestName == null) {
+                        return FormValidation.error("Project name " + projectName + " not found");
+                    }
                     return FormValidation.error("Project name " + projectName + " not found, did you mean "
-                            + AbstractProject.findNearest(projectName).getName());
+                            + nearestName);
                 }
                 if(!(item instanceof AbstractProject)){
                     return FormValidation.error("Project " + projectName + " is not buildable");
@@ -199,17 +639,25 @@ public class ParameterPoolBuilder extends Builder {
         }
 
         /**
-         * Autocompletes project names
+         * Autocompletes project names.
+         * The typed value is resolved against the context to a full name prefix that is looked up in the
+         * {@link ProjectNameIndex}, so only matching jobs are checked.
          */
         public AutoCompletionCandidates doAutoCompleteProjects(@QueryParameter String value, @AncestorInPath ItemGroup context) {
             AutoCompletionCandidates candidates = new AutoCompletionCandidates();
-            List<Job> jobs = Jenkins.getInstance().getAllItems(Job.class);
-            for (Job job: jobs) {
-                String relativeName = job.getRelativeNameFrom(context);
-                if (relativeName.startsWith(value)) {
-                    if (job.hasPermission(Item.READ)) {
-                        candidates.add(relativeName);
-                    }
+            value = Util.fixNull(value);
+            String baseName = context == null ? "" : context.getFullName();
+            String relativeName = value;
+            while (relativeName.startsWith("../") || relativeName.equals("..")) {
+                baseName = baseName.contains("/") ? baseName.substring(0, baseName.lastIndexOf('/')) : "";
+                relativeName = relativeName.length() > 2 ? relativeName.substring(3) : "";
+            }
+            String fullNamePrefix = baseName.isEmpty() ? relativeName : baseName + "/" + relativeName;
+
+            for (Job job : ProjectNameIndex.get().findJobs(fullNamePrefix, MAX_AUTO_COMPLETE_CANDIDATES)) {
+                String jobRelativeName = job.getRelativeNameFrom(context);
+                if (jobRelativeName.startsWith(value)) {
+                    candidates.add(jobRelativeName);
                 }
             }
             return candidates;
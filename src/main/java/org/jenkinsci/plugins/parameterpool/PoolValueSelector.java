@@ -18,6 +18,21 @@ public class PoolValueSelector {
     public String selectPoolValue(String parameterName, boolean preferError,
                                   String buildDisplayName, List<Run> builds, PrintStream logger,
                                    Set<String> allowedValues) {
+        BuildPoolValues poolValues = collectPoolValues(parameterName, buildDisplayName, builds, logger);
+
+        String value = poolValues.selectValue(allowedValues, preferError);
+        if (value == null) {
+            throw new IllegalArgumentException("No allowable value found! All of these values were taken: "
+                    + allowedValues.toString());
+        }
+        return value;
+    }
+
+    /**
+     * Pool values used by the builds, so that several values can be selected from a single pass over them.
+     */
+    public BuildPoolValues collectPoolValues(String parameterName, String buildDisplayName, List<Run> builds,
+                                             PrintStream logger) {
         BuildPoolValues poolValues = new BuildPoolValues();
         int completedBuildsChecked = 0;
         logger.println("Checking previous builds for parameter " + parameterName);
@@ -35,6 +50,17 @@ public class PoolValueSelector {
                 completedBuildsChecked ++;
             }
 
+            MatrixPoolAssignment matrixAssignment = build.getAction(MatrixPoolAssignment.class);
+            if (matrixAssignment != null && !matrixAssignment.getValues(parameterName).isEmpty()) {
+                List<String> assignedValues = matrixAssignment.getValues(parameterName);
+                logger.println(String.format("%s - %s, %s (assigned to matrix configurations)",
+                        build.getFullDisplayName(), result.toString(), assignedValues.toString()));
+                for (String assignedValue : assignedValues) {
+                    poolValues.addPoolValue(result, assignedValue);
+                }
+                continue;
+            }
+
             ParameterEnvAction parameterEnvAction = build.getAction(ParameterEnvAction.class);
             ParametersAction parametersAction = build.getAction(ParametersAction.class);
 
@@ -71,13 +97,7 @@ public class PoolValueSelector {
         }
         logger.println("Finished checking previous builds for parameter " + parameterName);
         poolValues.printValues(logger);
-
-        String value = poolValues.selectValue(allowedValues, preferError);
-        if (value == null) {
-            throw new IllegalArgumentException("No allowable value found! All of these values were taken: "
-                    + allowedValues.toString());
-        }
-        return value;
+        return poolValues;
     }
 
     private List<String> createParameterNameList(ParametersAction parameterValues) {
@@ -0,0 +1,226 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads pool values from a file or from the output of a script.
+ * Each line holds values in the same format as the pool values field, lines starting with # are ignored.
+ * Exclusions apply to the whole source, so a line of "- vm13" removes vm13 from every other line.
+ *
+ * Sources are cached between builds. A file is only read again when its modification stamp changes,
+ * and the content is only parsed again when its hash changes. Only lines that changed are parsed again.
+ * The least recently used sources are dropped once more than {@link #MAX_CACHED_SOURCES} are cached.
+ */
+public class PoolValuesSource {
+
+    static final int MAX_CACHED_SOURCES = 20;
+
+    private static final Map<String, SourceValues> cachedSources =
+            new LinkedHashMap<String, SourceValues>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SourceValues> eldest) {
+                    return size() > MAX_CACHED_SOURCES;
+                }
+            };
+
+    private final PrintStream logger;
+
+    public PoolValuesSource(PrintStream logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * @param sourceKey unique key for the file, e.g. node name and path
+     */
+    public Set<String> readFileValues(String sourceKey, FilePath file) throws IOException, InterruptedException {
+        if (!file.exists()) {
+            throw new IllegalArgumentException("Pool values file " + file.getRemote() + " was not found!");
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        SourceValues sourceValues = getSourceValues("file:" + sourceKey);
+        synchronized (sourceValues) {
+            if (sourceValues.lastModified == lastModified && sourceValues.length == length) {
+                logger.println("Pool values file " + file.getRemote() + " is unchanged, using "
+                        + sourceValues.values.size() + " cached values");
+                return sourceValues.values;
+            }
+            logger.println("Reading pool values from file " + file.getRemote());
+            sourceValues.update(file.readToString(), logger);
+            sourceValues.lastModified = lastModified;
+            sourceValues.length = length;
+            return sourceValues.values;
+        }
+    }
+
+    /**
+     * Runs the script in the build workspace. Each line of standard output is used as pool values.
+     * The script is written to a temporary file first, like the shell and batch build steps do,
+     * so scripts with more than one line run in full on every platform.
+     * @param sourceKey unique key for the script, e.g. node name and script text
+     */
+    public Set<String> readScriptValues(String sourceKey, String script, AbstractBuild build, Launcher launcher,
+                                        BuildListener listener, EnvVars env) throws IOException, InterruptedException {
+        FilePath workspace = build.getWorkspace();
+        if (workspace == null) {
+            throw new IllegalArgumentException("No workspace available to run the pool values script in");
+        }
+        boolean unix = launcher.isUnix();
+        FilePath scriptFile = unix
+                ? workspace.createTextTempFile("pool-values", ".sh", script, false)
+                : workspace.createTextTempFile("pool-values", ".bat", getBatchContents(script), false);
+        ArgumentListBuilder args = unix ? new ArgumentListBuilder("sh", scriptFile.getRemote())
+                : new ArgumentListBuilder("cmd", "/c", "call", scriptFile.getRemote());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        logger.println("Reading pool values from script output");
+        int exitCode;
+        try {
+            exitCode = launcher.launch().cmds(args).envs(env).stdout(output).stderr(listener.getLogger())
+                    .pwd(workspace).join();
+        } finally {
+            try {
+                scriptFile.delete();
+            } catch (IOException e) {
+                logger.println("Unable to delete pool values script file " + scriptFile.getRemote());
+            }
+        }
+        if (exitCode != 0) {
+            throw new IllegalArgumentException("Pool values script failed with exit code " + exitCode);
+        }
+
+        SourceValues sourceValues = getSourceValues("script:" + sourceKey);
+        synchronized (sourceValues) {
+            sourceValues.update(output.toString(build.getCharset().name()), logger);
+            return sourceValues.values;
+        }
+    }
+
+    /**
+     * Batch file contents for the script. Echo is turned off so that only the script output is read as values.
+     */
+    static String getBatchContents(String script) {
+        return "@echo off\r\n" + script.replaceAll("\r?\n", "\r\n") + "\r\nexit %ERRORLEVEL%";
+    }
+
+    private static SourceValues getSourceValues(String key) {
+        synchronized (cachedSources) {
+            SourceValues sourceValues = cachedSources.get(key);
+            if (sourceValues == null) {
+                sourceValues = new SourceValues();
+                cachedSources.put(key, sourceValues);
+            }
+            return sourceValues;
+        }
+    }
+
+    /**
+     * Values and excluded values parsed from a single line.
+     */
+    private static final class LineValues {
+
+        private static final String[] NO_VALUES = new String[0];
+
+        final String[] values;
+        final String[] excludedValues;
+
+        LineValues(ParameterParser parser) {
+            this.values = parser.getValues().toArray(NO_VALUES);
+            this.excludedValues = parser.getExcludedValues().isEmpty() ? NO_VALUES
+                    : parser.getExcludedValues().toArray(NO_VALUES);
+        }
+    }
+
+    /**
+     * Values parsed from the last read of a source, along with the values parsed from each line.
+     */
+    private static final class SourceValues {
+
+        long lastModified = -1;
+        long length = -1;
+        String digest;
+        Map<String, LineValues> parsedLines = new HashMap<String, LineValues>();
+        Set<String> values = new LinkedHashSet<String>();
+
+        void update(String content, PrintStream logger) {
+            String newDigest = Util.getDigestOf(content);
+            if (newDigest.equals(digest)) {
+                logger.println("Pool values source content is unchanged, using " + values.size() + " cached values");
+                return;
+            }
+
+            Map<String, LineValues> newParsedLines = new LinkedHashMap<String, LineValues>();
+            int lineNumber = 0;
+            int reparsedLines = 0;
+            for (String line : content.split("\r?\n")) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || newParsedLines.containsKey(line)) {
+                    continue;
+                }
+                LineValues lineValues = parsedLines.get(line);
+                if (lineValues == null) {
+                    try {
+                        lineValues = new LineValues(new ParameterParser(line, false));
+                    } catch (ParameterParseException e) {
+                        throw new IllegalArgumentException("Invalid pool values on line " + lineNumber
+                                + ": " + e.getMessage(), e);
+                    }
+                    reparsedLines++;
+                }
+                newParsedLines.put(line, lineValues);
+            }
+
+            Set<String> newValues = new LinkedHashSet<String>();
+            Set<String> excludedValues = new LinkedHashSet<String>();
+            for (LineValues lineValues : newParsedLines.values()) {
+                Collections.addAll(newValues, lineValues.values);
+                Collections.addAll(excludedValues, lineValues.excludedValues);
+            }
+            for (String excludedValue : excludedValues) {
+                if (!newValues.contains(excludedValue)) {
+                    throw new IllegalArgumentException("Excluded value " + excludedValue
+                            + " is not in the pool values source, use '\\-' for a literal ' - '");
+                }
+            }
+            newValues.removeAll(excludedValues);
+            logger.println("Parsed " + reparsedLines + " new or changed lines out of " + newParsedLines.size());
+
+            if (digest != null) {
+                printChanges(newValues, logger);
+            }
+            digest = newDigest;
+            parsedLines = newParsedLines;
+            values = newValues;
+        }
+
+        private void printChanges(Set<String> newValues, PrintStream logger) {
+            Set<String> addedValues = new LinkedHashSet<String>(newValues);
+            addedValues.removeAll(values);
+            Set<String> removedValues = new LinkedHashSet<String>(values);
+            removedValues.removeAll(newValues);
+            if (!addedValues.isEmpty()) {
+                logger.println("Values added to pool source " + addedValues.toString());
+            }
+            if (!removedValues.isEmpty()) {
+                logger.println("Values removed from pool source, running builds keep them but they will not be "
+                        + "selected again " + removedValues.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.jenkinsci.plugins.parameterpool;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.util.EditDistance;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted index of job full names, kept up to date as items are created, copied, moved and deleted.
+ * Lets project names be autocompleted and validated without walking every job in Jenkins.
+ */
+@Extension
+public class ProjectNameIndex extends ItemListener {
+
+    /**
+     * Number of names either side of a missing name that are compared when looking for the nearest name.
+     */
+    private static final int NEAREST_WINDOW = 50;
+
+    /**
+     * Replaced as a whole when rebuilt, so lookups never see a partially built index.
+     * Null until the index is first built.
+     */
+    private volatile NavigableSet<String> jobNames;
+
+    public static ProjectNameIndex get() {
+        return Jenkins.getInstance().getExtensionList(ItemListener.class).get(ProjectNameIndex.class);
+    }
+
+    /**
+     * Jobs whose full name starts with the prefix, in name order.
+     * Only jobs the current user can read are returned, at most limit jobs are checked for permission.
+     */
+    public List<Job> findJobs(String prefix, int limit) {
+        NavigableSet<String> names = getJobNames();
+        List<Job> jobs = new ArrayList<Job>();
+        Jenkins jenkins = Jenkins.getInstance();
+        Iterator<String> matchingNames = names.tailSet(prefix, true).iterator();
+        int checked = 0;
+        while (matchingNames.hasNext() && checked < limit) {
+            String name = matchingNames.next();
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            checked++;
+            Job job = jenkins.getItemByFullName(name, Job.class);
+            if (job != null && job.hasPermission(Item.READ)) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Nearest readable job full name to the given name, compared against the names sorted around it.
+     * Returns null if there is no readable job nearby.
+     */
+    public String findNearest(String name) {
+        NavigableSet<String> names = getJobNames();
+        List<String> nearbyNames = new ArrayList<String>();
+        Iterator<String> higherNames = names.tailSet(name, true).iterator();
+        Iterator<String> lowerNames = names.headSet(name, false).descendingIterator();
+        for (int i = 0; i < NEAREST_WINDOW; i++) {
+            if (higherNames.hasNext()) {
+                nearbyNames.add(higherNames.next());
+            }
+            if (lowerNames.hasNext()) {
+                nearbyNames.add(lowerNames.next());
+            }
+        }
+        if (nearbyNames.isEmpty()) {
+            return null;
+        }
+        String nearest = EditDistance.findNearest(name, nearbyNames);
+        Job job = Jenkins.getInstance().getItemByFullName(nearest, Job.class);
+        return job != null && job.hasPermission(Item.READ) ? nearest : null;
+    }
+
+    @Override
+    public void onLoaded() {
+        rebuild();
+    }
+
+    @Override
+    public void onCreated(Item item) {
+        add(item);
+    }
+
+    @Override
+    public void onCopied(Item src, Item item) {
+        add(item);
+    }
+
+    @Override
+    public void onDeleted(Item item) {
+        remove(item.getFullName());
+    }
+
+    @Override
+    public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+        remove(oldFullName);
+        add(item);
+    }
+
+    private NavigableSet<String> getJobNames() {
+        NavigableSet<String> names = jobNames;
+        if (names != null) {
+            return names;
+        }
+        synchronized (this) {
+            if (jobNames == null) {
+                rebuild();
+            }
+            return jobNames;
+        }
+    }
+
+    /**
+     * Builds a new index and swaps it in. Updates wait for the lock so none are lost during a rebuild.
+     */
+    private synchronized void rebuild() {
+        // index every job regardless of who triggered the rebuild, permissions are checked on lookup
+        SecurityContext oldContext = ACL.impersonate(ACL.SYSTEM);
+        try {
+            NavigableSet<String> names = new ConcurrentSkipListSet<String>();
+            for (Job job : Jenkins.getInstance().getAllItems(Job.class)) {
+                names.add(job.getFullName());
+            }
+            jobNames = names;
+        } finally {
+            SecurityContextHolder.setContext(oldContext);
+        }
+    }
+
+    private synchronized void add(Item item) {
+        if (jobNames == null) {
+            // picked up when the index is first built
+            return;
+        }
+        SecurityContext oldContext = ACL.impersonate(ACL.SYSTEM);
+        try {
+            for (Job job : item.getAllJobs()) {
+                jobNames.add(job.getFullName());
+            }
+        } finally {
+            SecurityContextHolder.setContext(oldContext);
+        }
+    }
+
+    private synchronized void remove(String fullName) {
+        if (jobNames == null) {
+            return;
+        }
+        jobNames.remove(fullName);
+        jobNames.subSet(fullName + "/", fullName + "/\uffff").clear();
+    }
+}
@@ -3,6 +3,9 @@ package org.jenkinsci.plugins.parameterpool;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ParameterParserTest {
 
@@ -42,4 +45,97 @@ public class ParameterParserTest {
         assertEquals("", new ParameterParser(null).valuesAsText());
     }
 
+    @Test
+    public void parseMultipleRangesInOneValue() {
+        ParameterParser processor = new ParameterParser("a[1..3]b[1..2]");
+        assertEquals("a1b1, a1b2, a2b1, a2b2, a3b1, a3b2", processor.valuesAsText());
+    }
+
+    @Test
+    public void parseManySegmentsInOneValue() {
+        StringBuilder sourceText = new StringBuilder();
+        StringBuilder expectedValue = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sourceText.append("a[1]");
+            expectedValue.append("a1");
+        }
+        sourceText.append("b[1..2]");
+        ParameterParser processor = new ParameterParser(sourceText.toString());
+        assertEquals(expectedValue + "b1, " + expectedValue + "b2", processor.valuesAsText());
+    }
+
+    @Test
+    public void parsePaddedRange() {
+        ParameterParser processor = new ParameterParser("vm[008..011]");
+        assertEquals("vm008, vm009, vm010, vm011", processor.valuesAsText());
+        assertTrue(processor.hasPaddedRanges());
+        assertTrue(new ParameterParser("vm[01]").hasPaddedRanges());
+        assertFalse(new ParameterParser("vm[0..10], port[8000..9000:10]").hasPaddedRanges());
+    }
+
+    @Test
+    public void parseSteppedRange() {
+        ParameterParser processor = new ParameterParser("port[8000..8030:10], port[20..1:8]");
+        assertEquals("port8000, port8010, port8020, port8030, port20, port12, port4", processor.valuesAsText());
+    }
+
+    @Test
+    public void parseExclusions() {
+        ParameterParser processor = new ParameterParser("vm[1..6] - vm[3] - vm[5..6], test-vm, vm7 - vm2");
+        assertEquals("vm1, vm4, test-vm, vm7", processor.valuesAsText());
+    }
+
+    @Test
+    public void parseEscapedCharacters() {
+        ParameterParser processor = new ParameterParser("a\\,b, vm\\[1\\]");
+        assertEquals("a,b, vm[1]", processor.valuesAsText());
+    }
+
+    @Test
+    public void parseValuesWithSpaces() {
+        ParameterParser processor = new ParameterParser(" first project ,second  project,, ");
+        assertEquals("first project, second  project", processor.valuesAsText());
+    }
+
+    @Test
+    public void parseOldStyleValuesLiterally() {
+        ParameterParser processor = new ParameterParser("qe-upgrade-vm-1, -vm2, vm3 -x, vm4- y");
+        assertEquals("qe-upgrade-vm-1, -vm2, vm3 -x, vm4- y", processor.valuesAsText());
+    }
+
+    @Test
+    public void parseEscapedBackslashAndDash() {
+        ParameterParser processor = new ParameterParser("C:\\\\tools\\\\vm1, build \\- linux");
+        assertEquals("C:\\tools\\vm1, build - linux", processor.valuesAsText());
+    }
+
+    @Test
+    public void reportAmbiguousOldStyleValues() {
+        assertParseError("C:\\tools\\vm1", 3);
+        assertParseError("build - linux", 9);
+        assertParseError("vm[1..3] - vm4", 12);
+    }
+
+    @Test
+    public void reportInvalidDefinitions() {
+        assertParseError("vm[1..3", 3);
+        assertParseError("vm[1..x]", 7);
+        assertParseError("vm[1.3]", 5);
+        assertParseError("vm1]", 4);
+        assertParseError("vm[1..4:0]", 9);
+        assertParseError("vm[1..4] - ", 10);
+        assertParseError("vm[1..4] - - vm1", 12);
+        assertParseError("a[1..32]b[0..576460752303423487]", 1);
+        assertParseError("vm[1..100001]", 1);
+    }
+
+    private void assertParseError(String sourceText, int expectedCharacter) {
+        try {
+            new ParameterParser(sourceText);
+            fail("Expected parse error for " + sourceText);
+        } catch (ParameterParseException e) {
+            assertEquals(e.getMessage(), expectedCharacter - 1, e.getPosition());
+        }
+    }
+
 }
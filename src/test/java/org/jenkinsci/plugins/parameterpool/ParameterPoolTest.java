@@ -1,25 +1,40 @@
 package org.jenkinsci.plugins.parameterpool;
 
+import hudson.matrix.AxisList;
+import hudson.matrix.Combination;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
+import hudson.matrix.TextAxis;
+import hudson.model.Cause;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.JobProperty;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Result;
+import hudson.model.Run;
 import hudson.model.StringParameterDefinition;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.tasks.Builder;
 import hudson.tasks.Shell;
 import org.apache.commons.io.FileUtils;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Unit tests using a test jenkins instance
@@ -28,6 +43,9 @@ public class ParameterPoolTest {
     @Rule
     public JenkinsRule jenkins = new JenkinsRule();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void canSelectPoolValue() throws IOException, ExecutionException, InterruptedException {
         FreeStyleProject project = createProject(0, false);
@@ -124,11 +142,267 @@ public class ParameterPoolTest {
         assertThatVmIsInText(completedBuild.getNumber(), 2, logText);
     }
 
+    @Test
+    public void pickValuesFromChangedValuesFile() throws Exception {
+        File valuesFile = new File(ParameterPoolBuilder.getMasterValuesDir(), "vms.txt");
+        FileUtils.writeStringToFile(valuesFile, "# test vms\nvm[1..2]\n- vm1\n");
+
+        FreeStyleProject project = jenkins.createFreeStyleProject("values file project");
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder("", "testValue", "", false);
+        poolBuilder.setValuesFile("${JENKINS_HOME}/parameter-pool/vms.txt");
+        project.getBuildersList().add(poolBuilder);
+        project.getBuildersList().add(new Shell("echo Vm ${testValue} used for testing"));
+
+        FreeStyleBuild firstBuild = project.scheduleBuild2(0).get();
+        String logText = FileUtils.readFileToString(firstBuild.getLogFile());
+        assertThatVmIsInText(firstBuild.getNumber(), 2, logText);
+
+        FileUtils.writeStringToFile(valuesFile, "vm2\nvm3\n");
+        valuesFile.setLastModified(valuesFile.lastModified() + 10000);
+
+        FreeStyleBuild secondBuild = project.scheduleBuild2(0).get();
+        logText = FileUtils.readFileToString(secondBuild.getLogFile());
+        assertThatVmIsInText(secondBuild.getNumber(), 3, logText);
+        assertTrue(logText, logText.contains("Values added to pool source [vm3]"));
+    }
+
+    @Test
+    public void pickValuesFromScriptOutput() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("values script project");
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder("", "testValue", "", false);
+        poolBuilder.setValuesScript("echo '# test vms'\necho 'vm[7..8]'");
+        project.getBuildersList().add(poolBuilder);
+        project.getBuildersList().add(new Shell("echo Vm ${testValue} used for testing"));
+
+        FreeStyleBuild firstBuild = project.scheduleBuild2(0).get();
+        String logText = FileUtils.readFileToString(firstBuild.getLogFile());
+        assertThatVmIsInText(firstBuild.getNumber(), 7, logText);
+
+        FreeStyleBuild secondBuild = project.scheduleBuild2(0).get();
+        logText = FileUtils.readFileToString(secondBuild.getLogFile());
+        assertThatVmIsInText(secondBuild.getNumber(), 8, logText);
+        assertTrue(logText, logText.contains("Pool values source content is unchanged"));
+    }
+
+    @Test
+    public void runningBuildKeepsValueRemovedFromValuesFile() throws Exception {
+        jenkins.jenkins.setNumExecutors(3);
+        File valuesFile = new File(ParameterPoolBuilder.getMasterValuesDir(), "drained.txt");
+        FileUtils.writeStringToFile(valuesFile, "vm1\nvm2\n");
+        File releaseDir = temporaryFolder.newFolder();
+
+        FreeStyleProject project = jenkins.createFreeStyleProject("drained values project");
+        project.setConcurrentBuild(true);
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder("", "testValue", "", false);
+        poolBuilder.setValuesFile("${JENKINS_HOME}/parameter-pool/drained.txt");
+        project.getBuildersList().add(poolBuilder);
+        // each build holds its value until its release file is created
+        project.getBuildersList().add(new Shell("echo Vm ${testValue} used for testing\n"
+                + "while [ ! -f " + releaseDir.getAbsolutePath() + "/${BUILD_NUMBER} ]; do sleep 1; done"));
+
+        QueueTaskFuture<FreeStyleBuild> firstFuture = project.scheduleBuild2(0);
+        FreeStyleBuild firstBuild = firstFuture.waitForStart();
+        waitForLogText(firstBuild, "Vm vm1 used for testing");
+
+        FileUtils.writeStringToFile(valuesFile, "vm2\n");
+        valuesFile.setLastModified(valuesFile.lastModified() + 10000);
+
+        QueueTaskFuture<FreeStyleBuild> secondFuture = project.scheduleBuild2(0);
+        FreeStyleBuild secondBuild = secondFuture.waitForStart();
+        waitForLogText(secondBuild, "Vm vm2 used for testing");
+        String logText = FileUtils.readFileToString(secondBuild.getLogFile());
+        assertTrue(logText, logText.contains("Values removed from pool source, running builds keep them but they "
+                + "will not be selected again [vm1]"));
+
+        assertTrue(new File(releaseDir, "1").createNewFile());
+        jenkins.assertBuildStatusSuccess(firstFuture);
+
+        // vm1 is free again but was removed, vm2 is still held by the second build
+        FreeStyleBuild thirdBuild = jenkins.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0).get());
+        logText = FileUtils.readFileToString(thirdBuild.getLogFile());
+        assertFalse(logText, logText.contains("Vm vm1 used for testing"));
+        assertTrue(logText, logText.contains("No allowable value found!"));
+
+        assertTrue(new File(releaseDir, "2").createNewFile());
+        jenkins.assertBuildStatusSuccess(secondFuture);
+    }
+
+    @Test
+    public void readWorkspaceValuesFileNamedLikeJenkinsHome() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("workspace values file project");
+        project.getBuildersList().add(new Shell("mkdir -p JENKINS_HOME_backup && echo vm5 > JENKINS_HOME_backup/vms.txt"));
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder("", "testValue", "", false);
+        poolBuilder.setValuesFile("JENKINS_HOME_backup/vms.txt");
+        project.getBuildersList().add(poolBuilder);
+        project.getBuildersList().add(new Shell("echo Vm ${testValue} used for testing"));
+
+        FreeStyleBuild build = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        String logText = FileUtils.readFileToString(build.getLogFile());
+        assertThatVmIsInText(build.getNumber(), 5, logText);
+    }
+
+    @Test
+    public void rejectMasterValuesFileFromParameterOutsidePoolDirectory() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("parameter values file project");
+        String secretFile = new File(jenkins.jenkins.getRootDir(), "secrets/master.key").getAbsolutePath();
+        project.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("POOL_FILE", secretFile)));
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder("", "testValue", "", false);
+        poolBuilder.setValuesFile("${POOL_FILE}");
+        project.getBuildersList().add(poolBuilder);
+
+        FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0).get());
+        String logText = FileUtils.readFileToString(build.getLogFile());
+        assertTrue(logText, logText.contains("Pool values files on the master have to be in"));
+    }
+
+    @Test
+    public void rejectMasterValuesFileOutsidePoolDirectory() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("secret values file project");
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder("", "testValue", "", false);
+        poolBuilder.setValuesFile("${JENKINS_HOME}/parameter-pool/../secrets/master.key");
+        project.getBuildersList().add(poolBuilder);
+
+        FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0).get());
+        String logText = FileUtils.readFileToString(build.getLogFile());
+        assertTrue(logText, logText.contains("Pool values files on the master have to be in"));
+    }
+
+    @Test
+    public void autoCompleteProjectsFollowsItemChanges() throws Exception {
+        jenkins.createFreeStyleProject("alpha one");
+        jenkins.createFreeStyleProject("alpha two");
+        FreeStyleProject renamedProject = jenkins.createFreeStyleProject("beta");
+        ParameterPoolBuilder.DescriptorImpl descriptor =
+                jenkins.jenkins.getDescriptorByType(ParameterPoolBuilder.DescriptorImpl.class);
+
+        assertEquals(Arrays.asList("alpha one", "alpha two"),
+                descriptor.doAutoCompleteProjects("alpha", jenkins.jenkins).getValues());
+
+        renamedProject.renameTo("alpha three");
+        jenkins.jenkins.getItem("alpha one").delete();
+
+        assertEquals(Arrays.asList("alpha three", "alpha two"),
+                descriptor.doAutoCompleteProjects("alpha", jenkins.jenkins).getValues());
+    }
+
+    @Test
+    public void assignValuesToMatrixConfigurationsOnce() throws Exception {
+        MatrixProject project = createMatrixProject("matrix project",
+                new ParameterPoolBuilder("", "testValue", "vm[1..5]", false));
+
+        MatrixBuild firstBuild = project.scheduleBuild2(0).get();
+        assertMatrixVms(firstBuild, "vm1", "vm2", "vm3");
+        assertEquals(Arrays.asList("vm1", "vm2", "vm3"),
+                firstBuild.getAction(MatrixPoolAssignment.class).getValues("testValue"));
+
+        MatrixBuild secondBuild = project.scheduleBuild2(0).get();
+        assertMatrixVms(secondBuild, "vm4", "vm5", "vm1");
+    }
+
+    @Test
+    public void reuseMatrixAssignmentWhenRerunningConfiguration() throws Exception {
+        MatrixProject project = createMatrixProject("matrix rerun project",
+                new ParameterPoolBuilder("", "testValue", "vm[1..5]", false));
+
+        MatrixBuild firstBuild = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        assertMatrixVms(firstBuild, "vm1", "vm2", "vm3");
+
+        // re-run only config=b, started the way the Rebuild plugin does with an upstream cause
+        project.setCombinationFilter("config == 'b'");
+        MatrixBuild rerunBuild = jenkins.assertBuildStatusSuccess(
+                project.scheduleBuild2(0, new Cause.UpstreamCause((Run) firstBuild)));
+
+        MatrixRun rerun = rerunBuild.getRun(Combination.fromString("config=b"));
+        String logText = FileUtils.readFileToString(rerun.getLogFile());
+        assertTrue(logText, logText.contains("Reusing value vm2 assigned to config=b by "
+                + firstBuild.getFullDisplayName()));
+        assertTrue(logText, logText.contains("Vm vm2 used for testing"));
+        assertEquals(Arrays.asList("vm2"), rerunBuild.getAction(MatrixPoolAssignment.class).getValues("testValue"));
+    }
+
+    @Test
+    public void readValuesScriptOncePerMatrixBuild() throws Exception {
+        File scriptRuns = temporaryFolder.newFile("script-runs.txt");
+        ParameterPoolBuilder poolBuilder = new ParameterPoolBuilder("", "testValue", "", false);
+        poolBuilder.setValuesScript("echo run >> " + scriptRuns.getAbsolutePath() + "; echo 'vm[1..5]'");
+        MatrixProject project = createMatrixProject("matrix script project", poolBuilder);
+
+        MatrixBuild build = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        assertMatrixVms(build, "vm1", "vm2", "vm3");
+        assertEquals(1, FileUtils.readLines(scriptRuns).size());
+    }
+
+    @Test
+    public void validateOriginalAssignmentsWhenRerunningMatrixBuild() throws Exception {
+        MatrixProject project = createMatrixProject("matrix validate rerun project",
+                new ParameterPoolBuilder("", "testValue", "vm[1..5]", false));
+        MatrixBuild firstBuild = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        assertMatrixVms(firstBuild, "vm1", "vm2", "vm3");
+
+        project.getBuildersList().replaceBy(Arrays.<Builder>asList(
+                new ParameterPoolBuilder("", "testValue", "vm[2..5]", false),
+                new Shell("echo Vm ${testValue} used for testing")));
+        MatrixBuild rerunBuild = jenkins.assertBuildStatusSuccess(
+                project.scheduleBuild2(0, new Cause.UpstreamCause((Run) firstBuild)));
+        assertMatrixVms(rerunBuild, "vm4", "vm2", "vm3");
+
+        MatrixRun rerun = rerunBuild.getRun(Combination.fromString("config=a"));
+        String logText = FileUtils.readFileToString(rerun.getLogFile());
+        assertTrue(logText, logText.contains("Value vm1 assigned to config=a by " + firstBuild.getFullDisplayName()
+                + " is no longer allowed or is in use"));
+        assertTrue(logText, logText.contains("Reusing value vm3 assigned to config=c by "
+                + firstBuild.getFullDisplayName()));
+    }
+
+    @Test
+    public void assignValuesAsConfigurationsStartWhenPoolIsSmaller() throws Exception {
+        MatrixProject project = createMatrixProject("matrix small pool project",
+                new ParameterPoolBuilder("", "testValue", "vm[1..2]", false));
+
+        MatrixBuild build = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        assertMatrixVms(build, "vm1", "vm1", "vm2");
+        MatrixRun firstRun = build.getRun(Combination.fromString("config=a"));
+        String logText = FileUtils.readFileToString(firstRun.getLogFile());
+        assertTrue(logText, logText.contains("Only 2 value(s) free for 3 configuration(s)"));
+    }
+
+    @Test
+    public void selectOwnValueWhenPoolValuesReferToAxis() throws Exception {
+        MatrixProject project = createMatrixProject("matrix axis values project",
+                new ParameterPoolBuilder("", "testValue", "${config}-vm[1..2]", false));
+
+        MatrixBuild build = jenkins.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        assertMatrixVms(build, "a-vm1", "b-vm1", "c-vm1");
+        MatrixRun secondRun = build.getRun(Combination.fromString("config=b"));
+        String logText = FileUtils.readFileToString(secondRun.getLogFile());
+        assertTrue(logText, logText.contains("Pool settings refer to axes of"));
+    }
+
     private void assertThatVmIsInText(int buildNumber, int vmNumber, String logText) {
         assertTrue("Expected vm" + vmNumber + " in text " + buildNumber + " " + logText,
                 logText.contains("Vm vm" + vmNumber + " used for testing"));
     }
 
+    private void assertMatrixVms(MatrixBuild build, String... expectedVms) throws IOException {
+        String[] combinations = {"config=a", "config=b", "config=c"};
+        for (int i = 0; i < expectedVms.length; i++) {
+            MatrixRun run = build.getRun(Combination.fromString(combinations[i]));
+            String logText = FileUtils.readFileToString(run.getLogFile());
+            assertEquals(logText, expectedVms[i], build.getAction(MatrixPoolAssignment.class)
+                    .getValue("testValue", combinations[i]));
+            assertTrue(logText, logText.contains("Vm " + expectedVms[i] + " used for testing"));
+        }
+    }
+
+    private void waitForLogText(FreeStyleBuild build, String text) throws Exception {
+        for (int i = 0; i < 600; i++) {
+            if (FileUtils.readFileToString(build.getLogFile()).contains(text)) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        fail("Expected " + text + " in log of " + build.getFullDisplayName());
+    }
 
     private FreeStyleProject createProject(int sleepDuration, boolean preferError) throws IOException {
         return createProject("test project", "test project", sleepDuration, preferError);
@@ -153,6 +427,18 @@ public class ParameterPoolTest {
         return project;
     }
 
+    /**
+     * Configurations run one at a time so that they select values in combination order.
+     */
+    private MatrixProject createMatrixProject(String name, ParameterPoolBuilder poolBuilder) throws IOException {
+        jenkins.jenkins.setNumExecutors(1);
+        MatrixProject project = jenkins.jenkins.createProject(MatrixProject.class, name);
+        project.setAxes(new AxisList(new TextAxis("config", "a", "b", "c")));
+        project.getBuildersList().add(poolBuilder);
+        project.getBuildersList().add(new Shell("echo Vm ${testValue} used for testing"));
+        return project;
+    }
+
     private FreeStyleProject createProjectWithRegularParameter(String name, int sleepDuration) throws IOException {
         FreeStyleProject project = jenkins.createFreeStyleProject(name);
         project.setConcurrentBuild(true);